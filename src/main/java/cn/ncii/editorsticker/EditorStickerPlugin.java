@@ -15,12 +15,17 @@ import run.halo.app.plugin.PluginContext;
 @Component
 public class EditorStickerPlugin extends BasePlugin {
 
-    public EditorStickerPlugin(PluginContext pluginContext) {
+    private final StickerContentHandler stickerContentHandler;
+
+    public EditorStickerPlugin(PluginContext pluginContext, StickerContentHandler stickerContentHandler) {
         super(pluginContext);
+        this.stickerContentHandler = stickerContentHandler;
     }
 
     @Override
     public void start() {
+        // 从本地二进制快照恢复表情，启动后即可渲染，无需等待配置下载
+        stickerContentHandler.restoreLocalSnapshot();
         System.out.println("插件启动成功！");
     }
 
@@ -1,20 +1,33 @@
 package cn.ncii.editorsticker;
 
+import com.fasterxml.jackson.core.type.TypeReference;
 import com.fasterxml.jackson.databind.JsonNode;
 import com.fasterxml.jackson.databind.ObjectMapper;
+import io.micrometer.core.instrument.Timer;
 import lombok.RequiredArgsConstructor;
 import lombok.extern.slf4j.Slf4j;
 import org.jspecify.annotations.NonNull;
+import org.springframework.dao.DataIntegrityViolationException;
+import org.springframework.dao.OptimisticLockingFailureException;
+import org.springframework.http.HttpStatus;
 import org.springframework.stereotype.Component;
 import org.springframework.web.reactive.function.client.WebClient;
+import org.springframework.web.server.ResponseStatusException;
 import reactor.core.publisher.Mono;
+import run.halo.app.extension.ConfigMap;
+import run.halo.app.extension.Metadata;
 import run.halo.app.plugin.ReactiveSettingFetcher;
 import run.halo.app.theme.ReactivePostContentHandler;
 
 import java.time.Duration;
 import java.util.HashMap;
+import java.util.Locale;
 import java.util.Map;
+import java.util.Set;
+import java.util.UUID;
 import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicLong;
 import java.util.regex.Matcher;
 import java.util.regex.Pattern;
 
@@ -28,6 +41,8 @@ public class StickerContentHandler implements ReactivePostContentHandler {
 
     private final ReactiveSettingFetcher settingFetcher;
     private final run.halo.app.extension.ReactiveExtensionClient client;
+    private final StickerMetrics metrics;
+    private final StickerSnapshotFile snapshotFile;
     private final ObjectMapper objectMapper = new ObjectMapper();
     private final WebClient webClient = WebClient.builder()
         .codecs(configurer -> configurer.defaultCodecs().maxInMemorySize(5 * 1024 * 1024))
@@ -35,30 +50,143 @@ public class StickerContentHandler implements ReactivePostContentHandler {
     
     // 缓存表情映射
     private final Map<String, String> stickerCache = new ConcurrentHashMap<>();
+    // 预生成的 img 片段（样式之前的部分），避免每次替换都格式化
+    private final Map<String, String> fragmentCache = new ConcurrentHashMap<>();
     private volatile String cachedConfigUrl = null;
     private volatile String cachedExtraStyle = "";
+    private volatile int cachedStreamingThreshold = DEFAULT_STREAMING_THRESHOLD;
+    // 快照版本号，每次重建缓存时递增；集群同步模式下与共享快照的版本一致
+    private final AtomicLong snapshotVersion = new AtomicLong();
+    // 缓存来自共享快照时对应的快照版本，来自其它途径时为 -1；本地重载同样会递增 snapshotVersion，不能用它判断
+    private volatile long clusterVersion = -1;
+    
+    // 集群同步：当前副本标识和启动时间、最近一次检查共享快照的 URL 和时间，以及最近一次检查的结果
+    private final String replicaId = UUID.randomUUID().toString();
+    private final long startedAt = System.currentTimeMillis();
+    private volatile String lastSnapshotUrl = null;
+    private final AtomicLong lastSnapshotCheck = new AtomicLong();
+    private volatile Mono<Map<String, String>> pendingSnapshotCheck = null;
     
     // 短代码正则: :prefix_name: (支持字母、数字、下划线、连字符、中文，允许冒号内侧有空格)
-    // 使用负向后行断言排除转义的冒号 \:
-    private static final Pattern SHORTCODE_PATTERN = Pattern.compile("(?<!\\\\):\\s*([a-zA-Z0-9_\\-\\u4e00-\\u9fa5]+)\\s*:(?!\\\\)");
+    // 使用负向后行断言排除转义的冒号 \:；名称和空格长度有上限，保证单个匹配不超过 MAX_SHORTCODE_SPAN
+    private static final Pattern SHORTCODE_PATTERN = Pattern.compile("(?<!\\\\):\\s{0,16}([a-zA-Z0-9_\\-\\u4e00-\\u9fa5]{1,128})\\s{0,16}:(?!\\\\)");
     // 转义短代码正则: \:xxx\: 或 \:xxx: 或 :xxx\:
-    private static final Pattern ESCAPED_SHORTCODE_PATTERN = Pattern.compile("\\\\:([a-zA-Z0-9_\\-\\u4e00-\\u9fa5]+)\\\\?:|:([a-zA-Z0-9_\\-\\u4e00-\\u9fa5]+)\\\\:");
+    private static final Pattern ESCAPED_SHORTCODE_PATTERN = Pattern.compile("\\\\:([a-zA-Z0-9_\\-\\u4e00-\\u9fa5]{1,128})\\\\?:|:([a-zA-Z0-9_\\-\\u4e00-\\u9fa5]{1,128})\\\\:");
+    // 两个正则单次匹配尝试最多读取的字符数（向上取整）
+    private static final int MAX_SHORTCODE_SPAN = 256;
+    
+    // 内容超过该字符数时改用分块替换，降低大文章的内存峰值
+    private static final int DEFAULT_STREAMING_THRESHOLD = 256 * 1024;
+    // 分块替换时每块的目标字符数，必须大于 MAX_SHORTCODE_SPAN
+    private static final int STREAMING_CHUNK_SIZE = 16 * 1024;
+    // 不替换短代码的元素，内容原样输出
+    private static final Set<String> EXCLUDED_ELEMENTS = Set.of("code", "pre", "script", "style", "textarea");
+    // 排除元素中仍还原转义形式的元素，兼容以前在代码块中手动转义的文章
+    private static final Set<String> UNESCAPED_ELEMENTS = Set.of("code", "pre");
+    // 表情图片的基础样式，额外样式追加在其后
+    private static final String BASE_STICKER_STYLE = "display:inline;vertical-align:middle;background:none;border:none;box-shadow:none;";
+    
+    // 集群共享快照所在的 ConfigMap
+    private static final String SNAPSHOT_CONFIGMAP = "editor-sticker-snapshot";
+    // 检查共享快照版本的最小间隔
+    private static final Duration SNAPSHOT_POLL_INTERVAL = Duration.ofSeconds(10);
+    // 构建认领的有效期，超时后其它副本可以接手
+    private static final Duration SNAPSHOT_BUILD_LEASE = Duration.ofSeconds(30);
+    // 共享快照的最长使用时间，超过后由一个副本重新拉取配置 URL
+    private static final Duration SNAPSHOT_MAX_AGE = Duration.ofHours(1);
+    // 副本启动前构建的快照会重建一次，但距上次构建不足该间隔时不重建，避免滚动发布时每个副本各重建一次
+    private static final Duration SNAPSHOT_MIN_REBUILD_INTERVAL = Duration.ofMinutes(1);
+    // 等待其它副本发布快照时重新检查的间隔
+    private static final Duration SNAPSHOT_AWAIT_INTERVAL = Duration.ofMillis(500);
+    
+    // 检查共享快照的间隔，测试中可调小
+    Duration snapshotPollInterval = SNAPSHOT_POLL_INTERVAL;
 
+    /**
+     * 从本地二进制快照恢复表情映射，插件启动时调用，使首篇文章无需等待配置下载和解析
+     * <p>恢复的快照立即生效，同时在后台重新拉取一次配置，内容变化时再替换缓存。
+     * 快照损坏时保持缓存为空，首次渲染会按原流程重新获取并解析 JSON。</p>
+     */
+    public void restoreLocalSnapshot() {
+        long start = System.nanoTime();
+        try {
+            snapshotFile.read().ifPresent(snapshot -> {
+                stickerCache.clear();
+                stickerCache.putAll(snapshot.stickers());
+                fragmentCache.clear();
+                fragmentCache.putAll(snapshot.fragments());
+                cachedConfigUrl = snapshot.source();
+                snapshotVersion.set(snapshot.version());
+                metrics.recordReloadStage("parse", "file", System.nanoTime() - start);
+                metrics.recordSnapshot(snapshot.stickers().size(),
+                    estimateMemory(snapshot.stickers()) + estimateMemory(snapshot.fragments()), snapshot.version());
+                log.info("Restored {} stickers from local snapshot v{}", snapshot.stickers().size(), snapshot.version());
+                revalidateRestoredSnapshot(snapshot.source());
+            });
+        } catch (StickerSnapshotFile.CorruptSnapshotException e) {
+            log.warn("Local sticker snapshot is corrupt, falling back to JSON: {}", e.getMessage());
+            metrics.recordReloadFailure("file", "corrupt");
+        }
+    }
+
+    /**
+     * 后台重新拉取恢复快照对应的配置 URL，内容变化时由 {@link #parseAndCache} 替换缓存
+     * <p>只处理远程 URL 模式：自定义模式每次渲染都会读取 ConfigMap，集群同步模式由版本检查负责更新。</p>
+     */
+    private void revalidateRestoredSnapshot(String configUrl) {
+        settingFetcher.getSettingValue("basic")
+            .filter(setting -> !(setting.has("enableCustomMode") && setting.get("enableCustomMode").asBoolean(false))
+                && !(setting.has("enableClusterSync") && setting.get("enableClusterSync").asBoolean(false))
+                && setting.has("stickerConfigUrl")
+                && configUrl.equals(setting.get("stickerConfigUrl").asString("")))
+            .flatMap(setting -> fetchConfigBody(configUrl, "remote"))
+            .subscribe(body -> {
+                try {
+                    long version = snapshotVersion.get();
+                    Map<String, String> map = parseAndCache(body, configUrl, "remote");
+                    if (snapshotVersion.get() != version) {
+                        log.info("Sticker config changed since local snapshot, reloaded {} stickers", map.size());
+                    }
+                } catch (Exception e) {
+                    log.warn("Failed to parse sticker config while revalidating local snapshot", e);
+                    metrics.recordReloadFailure("remote", "parse");
+                }
+            }, e -> {
+                log.warn("Failed to revalidate local sticker snapshot against {}", configUrl, e);
+                metrics.recordReloadFailure("remote", StickerMetrics.fetchFailureCause(e));
+            });
+    }
+
+    /**
+     * 替换文章中的短代码
+     * <p>render 计时从表情映射就绪后开始，只包含替换本身；缓存未命中时的配置拉取和解析耗时由 reload.* 指标单独统计，
+     * 不会计入渲染延迟。加载表情映射失败时记一次耗时为 0 的 error。</p>
+     */
     @Override
     public Mono<PostContentContext> handle(@NonNull PostContentContext context) {
         return loadStickerMapReactive()
             .map(stickerMap -> {
+                Timer.Sample sample = metrics.start();
                 if (stickerMap.isEmpty()) {
+                    metrics.recordRender(sample, "skipped");
                     return context;
                 }
                 
-                String content = context.getContent();
-                String processedContent = replaceShortcodes(content, stickerMap);
-                context.setContent(processedContent);
+                try {
+                    String content = context.getContent();
+                    String processedContent = replaceShortcodes(content, stickerMap);
+                    context.setContent(processedContent);
+                } catch (RuntimeException e) {
+                    log.error("Failed to process stickers", e);
+                    metrics.recordRender(sample, "error");
+                    return context;
+                }
+                metrics.recordRender(sample, "success");
                 return context;
             })
             .onErrorResume(e -> {
-                log.error("Failed to process stickers", e);
+                log.error("Failed to load stickers", e);
+                metrics.recordRender(metrics.start(), "error");
                 return Mono.just(context);
             });
     }
@@ -71,6 +199,9 @@ public class StickerContentHandler implements ReactivePostContentHandler {
                 if (setting.has("stickerStyle")) {
                     cachedExtraStyle = setting.get("stickerStyle").asString("");
                 }
+                if (setting.has("streamingThreshold")) {
+                    cachedStreamingThreshold = setting.get("streamingThreshold").asInt(DEFAULT_STREAMING_THRESHOLD);
+                }
                 
                 // 检查是否启用自定义模式
                 boolean enableCustomMode = setting.has("enableCustomMode") && setting.get("enableCustomMode").asBoolean(false);
@@ -88,41 +219,292 @@ public class StickerContentHandler implements ReactivePostContentHandler {
                     return Mono.just(Map.<String, String>of());
                 }
                 
+                // 集群同步模式：从共享快照加载，只有认领到构建的副本才访问配置 URL
+                boolean enableClusterSync = setting.has("enableClusterSync") && setting.get("enableClusterSync").asBoolean(false);
+                if (enableClusterSync) {
+                    return loadClusterSnapshot(configUrl);
+                }
+                
                 // 如果配置没变且缓存存在，直接返回缓存
                 if (configUrl.equals(cachedConfigUrl) && !stickerCache.isEmpty()) {
+                    metrics.recordCacheHit("remote");
                     return Mono.just(new HashMap<>(stickerCache));
                 }
+                metrics.recordCacheMiss("remote");
                 
                 // 加载新配置
-                return webClient.get()
-                    .uri(configUrl)
-                    .retrieve()
-                    .bodyToMono(String.class)
-                    .timeout(Duration.ofSeconds(10))
+                return fetchConfigBody(configUrl, "remote")
                     .map(body -> {
                         try {
-                            JsonNode root = objectMapper.readTree(body);
-                            Map<String, String> map = parseOwoConfig(root);
-                            stickerCache.clear();
-                            stickerCache.putAll(map);
-                            cachedConfigUrl = configUrl;
+                            Map<String, String> map = parseAndCache(body, configUrl, "remote");
                             log.info("Loaded {} stickers from {}", map.size(), configUrl);
                             return map;
                         } catch (Exception e) {
                             log.error("Failed to parse sticker config", e);
-                            return stickerCache.isEmpty() ? Map.<String, String>of() : new HashMap<>(stickerCache);
+                            metrics.recordReloadFailure("remote", "parse");
+                            return currentStickers();
                         }
                     })
                     .onErrorResume(e -> {
                         log.error("Failed to fetch sticker config from {}", configUrl, e);
-                        return Mono.just(stickerCache.isEmpty() ? Map.<String, String>of() : new HashMap<>(stickerCache));
+                        metrics.recordReloadFailure("remote", StickerMetrics.fetchFailureCause(e));
+                        return Mono.just(currentStickers());
                     });
             })
             .switchIfEmpty(Mono.just(Map.of()));
     }
     
+    private Mono<String> fetchConfigBody(String configUrl, String source) {
+        return Mono.defer(() -> {
+            long fetchStart = System.nanoTime();
+            return webClient.get()
+                .uri(configUrl)
+                .retrieve()
+                .bodyToMono(String.class)
+                .timeout(Duration.ofSeconds(10))
+                .doOnNext(body -> metrics.recordReloadStage("fetch", source, System.nanoTime() - fetchStart));
+        });
+    }
+    
+    /**
+     * 集群同步模式下加载表情映射
+     * <p>副本不监听共享快照，而是在渲染文章时按 {@link #SNAPSHOT_POLL_INTERVAL} 检查一次版本，
+     * 版本变化时直接加载快照内容，因此各副本在发布后的下一次渲染触发的检查中收敛。
+     * 快照缺失、来源 URL 与配置不一致或快照过期（见 {@link #isStale}）时，通过乐观锁认领构建，
+     * 只有认领成功的副本访问配置 URL 并发布新版本。</p>
+     * <p>同一时刻只有一个渲染请求执行检查，其它请求沿用当前缓存；本副本还没有任何表情时等待该次检查的结果，
+     * 避免渲染出原始短代码。</p>
+     */
+    private Mono<Map<String, String>> loadClusterSnapshot(String configUrl) {
+        long now = System.currentTimeMillis();
+        long lastCheck = lastSnapshotCheck.get();
+        boolean throttled = configUrl.equals(lastSnapshotUrl) && now - lastCheck < snapshotPollInterval.toMillis();
+        if (throttled || !lastSnapshotCheck.compareAndSet(lastCheck, now)) {
+            if (!stickerCache.isEmpty()) {
+                metrics.recordCacheHit("cluster");
+                return Mono.just(new HashMap<>(stickerCache));
+            }
+            Mono<Map<String, String>> pending = pendingSnapshotCheck;
+            return pending != null ? pending : Mono.just(Map.of());
+        }
+        lastSnapshotUrl = configUrl;
+        
+        Mono<Map<String, String>> check = checkClusterSnapshot(configUrl).cache();
+        pendingSnapshotCheck = check;
+        return check;
+    }
+    
+    private Mono<Map<String, String>> checkClusterSnapshot(String configUrl) {
+        return client.fetch(ConfigMap.class, SNAPSHOT_CONFIGMAP)
+            .flatMap(configMap -> {
+                Map<String, String> data = configMap.getData() == null ? Map.of() : configMap.getData();
+                if (!hasSnapshotFor(data, configUrl)) {
+                    return claimAndBuildSnapshot(configMap, configUrl);
+                }
+                Mono<Map<String, String>> current = loadSnapshotIfChanged(data, configUrl);
+                if (isStale(data)) {
+                    // 过期的快照照常使用，同时在后台认领重建，渲染不等待配置下载
+                    return current.doOnNext(map -> claimAndBuildSnapshot(configMap, configUrl)
+                        .subscribe(rebuilt -> { }, e -> log.error("Failed to rebuild sticker snapshot for {}", configUrl, e)));
+                }
+                return current;
+            })
+            .switchIfEmpty(Mono.defer(() -> claimAndBuildSnapshot(null, configUrl)))
+            .onErrorResume(e -> {
+                log.error("Failed to sync sticker snapshot for {}", configUrl, e);
+                return Mono.just(currentStickers());
+            });
+    }
+    
+    private static boolean hasSnapshotFor(Map<String, String> data, String configUrl) {
+        return configUrl.equals(data.get("source")) && data.containsKey("stickers");
+    }
+    
+    /**
+     * 快照是否需要重建：超过 {@link #SNAPSHOT_MAX_AGE}，或构建于本副本启动之前且已超过 {@link #SNAPSHOT_MIN_REBUILD_INTERVAL}。
+     * 没有 builtAt 的旧快照视为过期
+     */
+    private boolean isStale(Map<String, String> data) {
+        long builtAt = parseLong(data.get("builtAt"));
+        long age = System.currentTimeMillis() - builtAt;
+        return age >= SNAPSHOT_MAX_AGE.toMillis()
+            || builtAt < startedAt && age >= SNAPSHOT_MIN_REBUILD_INTERVAL.toMillis();
+    }
+    
+    /**
+     * 共享快照版本与本地缓存来自的快照版本一致时直接使用缓存，否则加载快照内容
+     */
+    private Mono<Map<String, String>> loadSnapshotIfChanged(Map<String, String> data, String configUrl) {
+        long version = parseLong(data.get("version"));
+        if (version == clusterVersion && configUrl.equals(cachedConfigUrl)) {
+            metrics.recordCacheHit("cluster");
+            return Mono.just(currentStickers());
+        }
+        metrics.recordCacheMiss("cluster");
+        return Mono.fromCallable(() -> loadSnapshot(data, configUrl, version));
+    }
+    
+    private Map<String, String> loadSnapshot(Map<String, String> data, String configUrl, long version) throws Exception {
+        long parseStart = System.nanoTime();
+        Map<String, String> map = objectMapper.readValue(data.get("stickers"), new TypeReference<Map<String, String>>() {});
+        metrics.recordReloadStage("parse", "cluster", System.nanoTime() - parseStart);
+        updateCache(map, configUrl, version);
+        clusterVersion = version;
+        log.info("Loaded {} stickers from cluster snapshot v{}", map.size(), version);
+        return map;
+    }
+    
+    /**
+     * 认领并构建共享快照，其它副本正在构建或认领冲突时沿用本地缓存，等待下次轮询
+     * <p>只有乐观锁冲突和重名视为其它副本先认领，此时没有缓存的副本等待其发布；
+     * 其余错误记为发布失败，没有缓存时自行拉取配置但不发布。</p>
+     */
+    private Mono<Map<String, String>> claimAndBuildSnapshot(ConfigMap configMap, String configUrl) {
+        long now = System.currentTimeMillis();
+        if (configMap != null && configMap.getData() != null) {
+            String builder = configMap.getData().get("builder");
+            long buildStartedAt = parseLong(configMap.getData().get("buildStartedAt"));
+            if (builder != null && !builder.equals(replicaId)
+                && now - buildStartedAt < SNAPSHOT_BUILD_LEASE.toMillis()) {
+                return currentOrAwaitPublished(configUrl, buildStartedAt + SNAPSHOT_BUILD_LEASE.toMillis());
+            }
+        }
+        
+        ConfigMap claim = configMap;
+        if (claim == null) {
+            claim = new ConfigMap();
+            Metadata metadata = new Metadata();
+            metadata.setName(SNAPSHOT_CONFIGMAP);
+            claim.setMetadata(metadata);
+        }
+        if (claim.getData() == null) {
+            claim.setData(new HashMap<>());
+        }
+        claim.getData().put("builder", replicaId);
+        claim.getData().put("buildStartedAt", String.valueOf(now));
+        
+        Mono<ConfigMap> claimed = configMap == null ? client.create(claim) : client.update(claim);
+        // 只处理认领本身的错误，构建和发布的错误由 buildSnapshot 记录
+        return claimed
+            .map(owned -> buildSnapshot(owned, configUrl))
+            .onErrorResume(e -> {
+                if (isClaimConflict(e)) {
+                    log.debug("Sticker snapshot build claimed by another replica", e);
+                    return Mono.just(currentOrAwaitPublished(configUrl, now + SNAPSHOT_BUILD_LEASE.toMillis()));
+                }
+                log.warn("Failed to claim sticker snapshot build for {}", configUrl, e);
+                metrics.recordReloadFailure("cluster", "publish");
+                return Mono.just(currentOrFetchLocally(configUrl));
+            })
+            .flatMap(build -> build);
+    }
+    
+    private static boolean isClaimConflict(Throwable e) {
+        return e instanceof OptimisticLockingFailureException
+            || e instanceof DataIntegrityViolationException
+            || e instanceof ResponseStatusException statusException
+                && statusException.getStatusCode().value() == HttpStatus.CONFLICT.value();
+    }
+    
+    /**
+     * 其它副本正在构建时沿用本地缓存；本副本还没有任何表情时反复检查共享快照，直到对方发布为止，
+     * 不直接访问配置 URL。租约 {@code leaseExpiresAt} 到期仍未发布时才自行拉取配置
+     */
+    private Mono<Map<String, String>> currentOrAwaitPublished(String configUrl, long leaseExpiresAt) {
+        if (!stickerCache.isEmpty()) {
+            return Mono.just(currentStickers());
+        }
+        Duration remaining = Duration.ofMillis(Math.max(leaseExpiresAt - System.currentTimeMillis(), 0));
+        return Mono.defer(() -> client.fetch(ConfigMap.class, SNAPSHOT_CONFIGMAP))
+            .filter(configMap -> configMap.getData() != null && hasSnapshotFor(configMap.getData(), configUrl))
+            .repeatWhenEmpty(attempts -> attempts.delayElements(SNAPSHOT_AWAIT_INTERVAL))
+            .timeout(remaining)
+            .flatMap(configMap -> loadSnapshotIfChanged(configMap.getData(), configUrl))
+            .onErrorResume(TimeoutException.class, e -> {
+                log.warn("Sticker snapshot for {} was not published before the build lease expired", configUrl);
+                return currentOrFetchLocally(configUrl);
+            });
+    }
+    
+    /**
+     * 无法从共享快照加载时的兜底：有缓存时沿用；本副本还没有任何表情时自行拉取配置但不发布，
+     * 下次检查到共享快照时会被替换
+     */
+    private Mono<Map<String, String>> currentOrFetchLocally(String configUrl) {
+        if (!stickerCache.isEmpty()) {
+            return Mono.just(currentStickers());
+        }
+        return fetchConfigBody(configUrl, "cluster")
+            .map(body -> {
+                try {
+                    Map<String, String> map = parseStickers(body, "cluster");
+                    updateCache(map, configUrl, snapshotVersion.get() + 1);
+                    return map;
+                } catch (Exception e) {
+                    log.error("Failed to parse sticker config", e);
+                    metrics.recordReloadFailure("cluster", "parse");
+                    return Map.<String, String>of();
+                }
+            })
+            .onErrorResume(e -> {
+                log.error("Failed to fetch sticker config from {}", configUrl, e);
+                metrics.recordReloadFailure("cluster", StickerMetrics.fetchFailureCause(e));
+                return Mono.just(Map.of());
+            });
+    }
+    
+    private Mono<Map<String, String>> buildSnapshot(ConfigMap owned, String configUrl) {
+        return fetchConfigBody(configUrl, "cluster")
+            .doOnError(e -> metrics.recordReloadFailure("cluster", StickerMetrics.fetchFailureCause(e)))
+            .flatMap(body -> Mono.fromCallable(() -> parseStickers(body, "cluster"))
+                .doOnError(e -> metrics.recordReloadFailure("cluster", "parse")))
+            .flatMap(map -> Mono.fromCallable(() -> objectMapper.writeValueAsString(map))
+                .flatMap(serialized -> {
+                    // 内容没有变化时只刷新构建时间，不递增版本，其它副本无需重新加载
+                    boolean unchanged = hasSnapshotFor(owned.getData(), configUrl)
+                        && serialized.equals(owned.getData().get("stickers"));
+                    long version = parseLong(owned.getData().get("version")) + (unchanged ? 0 : 1);
+                    owned.getData().put("version", String.valueOf(version));
+                    owned.getData().put("source", configUrl);
+                    owned.getData().put("stickers", serialized);
+                    owned.getData().put("builtAt", String.valueOf(System.currentTimeMillis()));
+                    owned.getData().remove("builder");
+                    owned.getData().remove("buildStartedAt");
+                    return client.update(owned)
+                        .doOnError(e -> metrics.recordReloadFailure("cluster", "publish"))
+                        .map(saved -> {
+                            if (version != clusterVersion || !configUrl.equals(cachedConfigUrl)) {
+                                updateCache(map, configUrl, version);
+                                clusterVersion = version;
+                            }
+                            log.info("Published {} stickers from {} as cluster snapshot v{}", map.size(), configUrl, version);
+                            return map;
+                        });
+                }));
+    }
+    
+    private static long parseLong(String value) {
+        if (value == null || value.isEmpty()) {
+            return 0;
+        }
+        try {
+            return Long.parseLong(value);
+        } catch (NumberFormatException e) {
+            return 0;
+        }
+    }
+    
+    private Map<String, String> currentStickers() {
+        return stickerCache.isEmpty() ? Map.of() : new HashMap<>(stickerCache);
+    }
+    
     private Mono<Map<String, String>> loadCustomStickers() {
-        return client.fetch(run.halo.app.extension.ConfigMap.class, "editor-sticker-custom-data")
+        metrics.recordCacheMiss("custom");
+        return Mono.defer(() -> {
+                long fetchStart = System.nanoTime();
+                return client.fetch(ConfigMap.class, "editor-sticker-custom-data")
+                    .doOnNext(configMap -> metrics.recordReloadStage("fetch", "custom", System.nanoTime() - fetchStart));
+            })
             .map(configMap -> {
                 try {
                     String data = null;
@@ -132,21 +514,83 @@ public class StickerContentHandler implements ReactivePostContentHandler {
                     if (data == null || data.isEmpty()) {
                         return Map.<String, String>of();
                     }
-                    JsonNode root = objectMapper.readTree(data);
-                    Map<String, String> map = parseOwoConfig(root);
-                    stickerCache.clear();
-                    stickerCache.putAll(map);
-                    cachedConfigUrl = "custom";
+                    Map<String, String> map = parseAndCache(data, "custom", "custom");
                     log.info("Loaded {} custom stickers", map.size());
                     return map;
                 } catch (Exception e) {
                     log.error("Failed to parse custom stickers", e);
-                    return stickerCache.isEmpty() ? Map.<String, String>of() : new HashMap<>(stickerCache);
+                    metrics.recordReloadFailure("custom", "parse");
+                    return currentStickers();
                 }
             })
+            .onErrorResume(e -> {
+                log.error("Failed to fetch custom stickers", e);
+                metrics.recordReloadFailure("custom", StickerMetrics.fetchFailureCause(e));
+                return Mono.error(e);
+            })
             .defaultIfEmpty(Map.of());
     }
     
+    /**
+     * 解析配置并替换缓存
+     */
+    private Map<String, String> parseAndCache(String body, String configUrl, String source) throws Exception {
+        Map<String, String> map = parseStickers(body, source);
+        // 内容未变化时不重建缓存，也不递增版本
+        if (!configUrl.equals(cachedConfigUrl) || !map.equals(stickerCache)) {
+            updateCache(map, configUrl, snapshotVersion.get() + 1);
+        }
+        return map;
+    }
+    
+    /**
+     * 解析 OwO 配置，同时记录解析/构建耗时
+     */
+    private Map<String, String> parseStickers(String body, String source) throws Exception {
+        long parseStart = System.nanoTime();
+        JsonNode root = objectMapper.readTree(body);
+        long buildStart = System.nanoTime();
+        metrics.recordReloadStage("parse", source, buildStart - parseStart);
+        
+        Map<String, String> map = parseOwoConfig(root);
+        metrics.recordReloadStage("build", source, System.nanoTime() - buildStart);
+        return map;
+    }
+    
+    /**
+     * 替换缓存、更新快照指标，并在后台写入本地二进制快照
+     * <p>替换缓存和提交快照在同一把锁内完成，保证最后写入文件的快照与最终的缓存一致。</p>
+     */
+    private void updateCache(Map<String, String> map, String configUrl, long version) {
+        Map<String, String> fragments = HashMap.newHashMap(map.size());
+        map.forEach((shortcode, url) ->
+            fragments.put(shortcode, buildStickerFragment(shortcode.substring(1, shortcode.length() - 1), url)));
+        
+        synchronized (stickerCache) {
+            stickerCache.clear();
+            stickerCache.putAll(map);
+            fragmentCache.clear();
+            fragmentCache.putAll(fragments);
+            cachedConfigUrl = configUrl;
+            snapshotVersion.set(version);
+            // 来自共享快照时由调用方随后设置
+            clusterVersion = -1;
+            snapshotFile.writeInBackground(new StickerSnapshotFile.Snapshot(version, configUrl, map, fragments));
+        }
+        metrics.recordSnapshot(map.size(), estimateMemory(map) + estimateMemory(fragments), version);
+    }
+    
+    /**
+     * 粗略估算映射占用的内存：字符按 2 字节计，每个条目另加对象头和节点开销
+     */
+    private static long estimateMemory(Map<String, String> map) {
+        long bytes = 0;
+        for (Map.Entry<String, String> entry : map.entrySet()) {
+            bytes += 2L * (entry.getKey().length() + entry.getValue().length()) + 128;
+        }
+        return bytes;
+    }
+    
     private Map<String, String> parseOwoConfig(JsonNode root) {
         Map<String, String> map = new HashMap<>();
         
@@ -220,53 +664,309 @@ public class StickerContentHandler implements ReactivePostContentHandler {
         return "";
     }
     
+    /**
+     * 替换文章中的短代码
+     * <p>单遍扫描 HTML：标签（含属性值）、注释以及 {@link #EXCLUDED_ELEMENTS} 内的内容整段原样输出，
+     * 只有普通文本节点参与短代码替换；{@link #UNESCAPED_ELEMENTS} 内出现转义形式时仍会还原。
+     * 内容没有任何变化时直接返回原字符串。</p>
+     */
     private String replaceShortcodes(String content, Map<String, String> stickerMap) {
         if (content == null || content.isEmpty()) {
             return content;
         }
+        int chunkSize = content.length() > cachedStreamingThreshold ? STREAMING_CHUNK_SIZE : Integer.MAX_VALUE;
+        ShortcodeRenderer renderer = new ShortcodeRenderer(content, stickerMap, chunkSize);
+        String processed = renderer.render();
+        metrics.recordRenderContent(content.length(), renderer.replaced);
+        return processed;
+    }
+    
+    /**
+     * 单次渲染的状态
+     * <p>文本先做短代码替换，结果进入 carry 缓冲区再做转义处理，最后写入输出。
+     * 分块时每个窗口只提交距窗口末尾超过 {@link #MAX_SHORTCODE_SPAN} 的匹配，剩余部分留到下一个窗口，
+     * 因此跨越窗口边界的短代码和转义形式与整篇处理的结果一致，carry 的大小不超过一个块。</p>
+     * <p>输出缓冲区在第一次出现变化时才创建，之前的内容按原文位置记录，没有变化的文章不产生任何拷贝。
+     * 有变化时峰值内存约为：输入 + 输出缓冲区 + 最终输出字符串 + O(块大小)。</p>
+     */
+    private final class ShortcodeRenderer {
+        private final String content;
+        private final Map<String, String> stickerMap;
+        private final int chunkSize;
+        // 透明边界让前后断言能看到窗口外的字符，与整串匹配的结果一致
+        private final Matcher matcher;
+        private final Matcher escapedMatcher = ESCAPED_SHORTCODE_PATTERN.matcher("");
+        // 已完成短代码替换、尚未做转义处理的文本
+        private final StringBuilder carry = new StringBuilder();
+        // carry 是否仍是原文 [carryFrom, carryFrom + carry.length()) 的原样拷贝
+        private boolean carryPristine = true;
+        private int carryFrom = 0;
+        // 输出缓冲区，为 null 时输出等于原文 [0, emittedUpTo)
+        private StringBuilder out;
+        private int emittedUpTo = 0;
+        private int replaced = 0;
+        // 下一个 "\\:" 的位置，只向前查找，整篇最多扫描一遍
+        private int nextEscape = -1;
         
-        Matcher matcher = SHORTCODE_PATTERN.matcher(content);
-        StringBuilder result = new StringBuilder();
+        private ShortcodeRenderer(String content, Map<String, String> stickerMap, int chunkSize) {
+            this.content = content;
+            this.stickerMap = stickerMap;
+            this.chunkSize = chunkSize;
+            this.matcher = SHORTCODE_PATTERN.matcher(content)
+                .useTransparentBounds(true)
+                .useAnchoringBounds(false);
+        }
         
-        while (matcher.find()) {
-            // 去掉空格后的标准短代码格式
-            String normalizedShortcode = ":" + matcher.group(1) + ":";
-            String url = stickerMap.get(normalizedShortcode);
-            
-            String replacement;
-            if (url != null) {
-                String alt = matcher.group(1);
-                String escapedUrl = escapeHtml(url);
+        private String render() {
+            int length = content.length();
+            int pos = 0;
+            while (pos < length) {
+                int lt = content.indexOf('<', pos);
+                if (lt < 0) {
+                    appendText(pos, length);
+                    break;
+                }
+                appendText(pos, lt);
                 
-                StringBuilder styleBuilder = new StringBuilder();
-                styleBuilder.append("display:inline;vertical-align:middle;background:none;border:none;box-shadow:none;");
+                // 注释
+                if (content.startsWith("<!--", lt)) {
+                    int close = content.indexOf("-->", lt + 4);
+                    pos = close < 0 ? length : close + 3;
+                    emitContent(lt, pos);
+                    continue;
+                }
                 
-                if (cachedExtraStyle != null && !cachedExtraStyle.isEmpty()) {
-                    styleBuilder.append(cachedExtraStyle);
+                // 不是标签的 '<' 按普通字符处理
+                char next = lt + 1 < length ? content.charAt(lt + 1) : 0;
+                if (!isAsciiLetter(next) && next != '/' && next != '!' && next != '?') {
+                    emitContent(lt, lt + 1);
+                    pos = lt + 1;
+                    continue;
                 }
                 
-                String style = styleBuilder.toString();
+                int tagEnd = findTagEnd(lt + 1);
+                emitContent(lt, tagEnd);
+                pos = tagEnd;
+                
+                // 排除元素的内容整段原样输出，直到对应的结束标签；代码块中有转义形式时只做还原
+                if (isAsciiLetter(next) && content.charAt(tagEnd - 1) == '>' && content.charAt(tagEnd - 2) != '/') {
+                    String name = readTagName(lt + 1);
+                    if (EXCLUDED_ELEMENTS.contains(name)) {
+                        int close = findClosingTag(name, tagEnd);
+                        if (UNESCAPED_ELEMENTS.contains(name) && findEscape(tagEnd) < close) {
+                            appendEscapedOnly(tagEnd, close);
+                        } else {
+                            emitContent(tagEnd, close);
+                        }
+                        pos = close;
+                    }
+                }
+            }
+            return out == null ? content : out.toString();
+        }
+        
+        /**
+         * 处理一段文本节点
+         */
+        private void appendText(int start, int end) {
+            int pos = start;
+            while (pos < end) {
+                boolean last = end - pos <= chunkSize;
+                int windowEnd = last ? end : pos + chunkSize;
+                // 从 limit 之后开始的匹配可能需要窗口外的字符，留到下一个窗口
+                int limit = last ? windowEnd : windowEnd - MAX_SHORTCODE_SPAN;
                 
-                replacement = String.format(
-                    "<img src=\"%s\" srcset=\"%s\" sizes=\"\" alt=\"%s\" title=\"%s\" class=\"sticker-emoji no-lightbox\" style=\"%s\" referrerpolicy=\"no-referrer\">",
-                    escapedUrl, escapedUrl, escapeHtml(alt), escapeHtml(alt), style
-                );
+                int copied = pos;
+                int scanned = pos;
+                matcher.region(pos, windowEnd);
+                while (matcher.find() && matcher.start() < limit) {
+                    // 去掉空格后的标准短代码格式
+                    String shortcode = ":" + matcher.group(1) + ":";
+                    String url = stickerMap.get(shortcode);
+                    if (url != null) {
+                        carryContent(copied, matcher.start());
+                        appendStickerTag(carry, shortcode, matcher.group(1), url);
+                        carryPristine = false;
+                        copied = matcher.end();
+                        replaced++;
+                    }
+                    scanned = matcher.end();
+                }
+                int commit = Math.max(scanned, limit);
+                carryContent(copied, commit);
+                pos = commit;
+                drainCarry(pos == end);
+            }
+        }
+        
+        /**
+         * 处理含转义形式的代码块：跳过短代码替换，只处理转义
+         */
+        private void appendEscapedOnly(int start, int end) {
+            int pos = start;
+            while (pos < end) {
+                int windowEnd = end - pos <= chunkSize ? end : pos + chunkSize;
+                carryContent(pos, windowEnd);
+                pos = windowEnd;
+                drainCarry(pos == end);
+            }
+        }
+        
+        /**
+         * 处理转义的短代码：\:xxx\: -> :xxx:
+         * <p>未 flush 时只提交距 carry 末尾超过 {@link #MAX_SHORTCODE_SPAN} 的部分。</p>
+         */
+        private void drainCarry(boolean flush) {
+            int limit = flush ? carry.length() : carry.length() - MAX_SHORTCODE_SPAN;
+            if (limit <= 0) {
+                return;
+            }
+            int copied = 0;
+            int commit = limit;
+            escapedMatcher.reset(carry);
+            while (escapedMatcher.find() && escapedMatcher.start() < limit) {
+                String name = escapedMatcher.group(1) != null ? escapedMatcher.group(1) : escapedMatcher.group(2);
+                ensureOut().append(carry, copied, escapedMatcher.start()).append(':').append(name).append(':');
+                copied = escapedMatcher.end();
+                commit = Math.max(commit, copied);
+            }
+            if (out == null && carryPristine) {
+                emitContent(carryFrom, carryFrom + commit);
             } else {
-                replacement = matcher.group(0);
+                ensureOut().append(carry, copied, commit);
+            }
+            carry.delete(0, commit);
+            carryFrom += commit;
+            if (carry.isEmpty()) {
+                carryPristine = true;
             }
-            
-            matcher.appendReplacement(result, Matcher.quoteReplacement(replacement));
         }
-        matcher.appendTail(result);
         
-        // 处理转义的短代码：\:xxx\: -> :xxx:
-        String processed = result.toString();
-        processed = ESCAPED_SHORTCODE_PATTERN.matcher(processed).replaceAll(m -> {
-            String name = m.group(1) != null ? m.group(1) : m.group(2);
-            return ":" + name + ":";
-        });
+        private void carryContent(int from, int to) {
+            if (from >= to) {
+                return;
+            }
+            if (carry.isEmpty() && carryPristine) {
+                carryFrom = from;
+            } else if (carryFrom + carry.length() != from) {
+                carryPristine = false;
+            }
+            carry.append(content, from, to);
+        }
         
-        return processed;
+        /**
+         * 输出原文 [from, to)，输出缓冲区尚未创建时只记录位置
+         */
+        private void emitContent(int from, int to) {
+            if (out == null) {
+                emittedUpTo = to;
+            } else {
+                out.append(content, from, to);
+            }
+        }
+        
+        private StringBuilder ensureOut() {
+            if (out == null) {
+                out = new StringBuilder(content.length() + (content.length() >> 3));
+                out.append(content, 0, emittedUpTo);
+            }
+            return out;
+        }
+        
+        /**
+         * 找到标签结束的 '>'，跳过引号内的属性值
+         * <p>只有紧跟在 '=' （允许中间有空白）之后的引号才开始属性值，
+         * 属性名或无引号属性值中的零散引号（如 {@code alt=don't}）不影响判断。</p>
+         */
+        private int findTagEnd(int from) {
+            char quote = 0;
+            boolean afterEquals = false;
+            for (int i = from; i < content.length(); i++) {
+                char c = content.charAt(i);
+                if (quote != 0) {
+                    if (c == quote) {
+                        quote = 0;
+                    }
+                } else if (c == '>') {
+                    return i + 1;
+                } else if (c == '=') {
+                    afterEquals = true;
+                } else if (afterEquals && (c == '"' || c == '\'')) {
+                    quote = c;
+                    afterEquals = false;
+                } else if (!Character.isWhitespace(c)) {
+                    afterEquals = false;
+                }
+            }
+            return content.length();
+        }
+        
+        private int findEscape(int from) {
+            if (nextEscape < from) {
+                int found = content.indexOf("\\:", from);
+                nextEscape = found < 0 ? content.length() : found;
+            }
+            return nextEscape;
+        }
+        
+        /**
+         * 读取完整的标签名（含数字和 '-'），{@code <code-block>} 不会被当作 {@code code}
+         */
+        private String readTagName(int from) {
+            int i = from;
+            while (i < content.length() && isTagNameChar(content.charAt(i))) {
+                i++;
+            }
+            return content.substring(from, i).toLowerCase(Locale.ROOT);
+        }
+        
+        /**
+         * 查找 {@code </name} 的位置，忽略大小写，名称之后必须是空白、'>' 或 '/'，找不到时返回内容末尾
+         */
+        private int findClosingTag(String name, int from) {
+            int i = from;
+            while ((i = content.indexOf("</", i)) >= 0) {
+                int nameEnd = i + 2 + name.length();
+                if (content.regionMatches(true, i + 2, name, 0, name.length())
+                    && (nameEnd >= content.length() || isTagNameEnd(content.charAt(nameEnd)))) {
+                    return i;
+                }
+                i += 2;
+            }
+            return content.length();
+        }
+    }
+    
+    private static boolean isAsciiLetter(char c) {
+        return (c >= 'a' && c <= 'z') || (c >= 'A' && c <= 'Z');
+    }
+    
+    private static boolean isTagNameChar(char c) {
+        return isAsciiLetter(c) || (c >= '0' && c <= '9') || c == '-';
+    }
+    
+    private static boolean isTagNameEnd(char c) {
+        return c == '>' || c == '/' || Character.isWhitespace(c);
+    }
+    
+    private void appendStickerTag(StringBuilder target, String shortcode, String alt, String url) {
+        String fragment = fragmentCache.get(shortcode);
+        target.append(fragment != null ? fragment : buildStickerFragment(alt, url))
+            .append(BASE_STICKER_STYLE);
+        if (cachedExtraStyle != null && !cachedExtraStyle.isEmpty()) {
+            target.append(cachedExtraStyle);
+        }
+        target.append("\" referrerpolicy=\"no-referrer\">");
+    }
+    
+    /**
+     * 生成 img 标签中样式之前的部分，与样式设置无关，可以预先生成并缓存
+     */
+    private String buildStickerFragment(String alt, String url) {
+        String escapedUrl = escapeHtml(url);
+        String escapedAlt = escapeHtml(alt);
+        return "<img src=\"" + escapedUrl + "\" srcset=\"" + escapedUrl + "\" sizes=\"\" alt=\"" + escapedAlt
+            + "\" title=\"" + escapedAlt + "\" class=\"sticker-emoji no-lightbox\" style=\"";
     }
     
     private String escapeHtml(String str) {
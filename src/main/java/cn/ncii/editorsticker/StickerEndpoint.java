@@ -5,10 +5,13 @@ import com.fasterxml.jackson.databind.JsonNode;
 import com.fasterxml.jackson.databind.ObjectMapper;
 import com.fasterxml.jackson.databind.node.ArrayNode;
 import com.fasterxml.jackson.databind.node.ObjectNode;
+import io.micrometer.core.instrument.Timer;
 import lombok.RequiredArgsConstructor;
 import lombok.extern.slf4j.Slf4j;
 import org.springframework.http.MediaType;
+import org.springframework.http.server.reactive.ServerHttpResponse;
 import org.springframework.stereotype.Component;
+import org.springframework.web.reactive.function.server.HandlerFunction;
 import org.springframework.web.reactive.function.server.RouterFunction;
 import org.springframework.web.reactive.function.server.ServerRequest;
 import org.springframework.web.reactive.function.server.ServerResponse;
@@ -36,20 +39,37 @@ public class StickerEndpoint {
 
     private final ReactiveExtensionClient client;
     private final ReactiveSettingFetcher settingFetcher;
+    private final StickerMetrics metrics;
     private final ObjectMapper objectMapper = new ObjectMapper();
     
     private static final String CUSTOM_STICKERS_CONFIGMAP = "editor-sticker-custom-data";
 
     public RouterFunction<ServerResponse> endpoint() {
-        return route(GET("/apis/editor-sticker.ncii.cn/v1alpha1/custom-stickers"), this::getCustomStickers)
-            .andRoute(POST("/apis/editor-sticker.ncii.cn/v1alpha1/custom-stickers"), this::saveCustomStickers)
-            .andRoute(POST("/apis/editor-sticker.ncii.cn/v1alpha1/custom-stickers/group"), this::addGroup)
-            .andRoute(DELETE("/apis/editor-sticker.ncii.cn/v1alpha1/custom-stickers/group/{name}"), this::deleteGroup)
-            .andRoute(POST("/apis/editor-sticker.ncii.cn/v1alpha1/custom-stickers/group/{name}/sticker"), this::addSticker)
-            .andRoute(DELETE("/apis/editor-sticker.ncii.cn/v1alpha1/custom-stickers/group/{groupName}/sticker/{stickerText}"), this::deleteSticker)
+        return route(GET("/apis/editor-sticker.ncii.cn/v1alpha1/custom-stickers"), timed("get-stickers", this::getCustomStickers))
+            .andRoute(POST("/apis/editor-sticker.ncii.cn/v1alpha1/custom-stickers"), timed("save-stickers", this::saveCustomStickers))
+            .andRoute(POST("/apis/editor-sticker.ncii.cn/v1alpha1/custom-stickers/group"), timed("add-group", this::addGroup))
+            .andRoute(DELETE("/apis/editor-sticker.ncii.cn/v1alpha1/custom-stickers/group/{name}"), timed("delete-group", this::deleteGroup))
+            .andRoute(POST("/apis/editor-sticker.ncii.cn/v1alpha1/custom-stickers/group/{name}/sticker"), timed("add-sticker", this::addSticker))
+            .andRoute(DELETE("/apis/editor-sticker.ncii.cn/v1alpha1/custom-stickers/group/{groupName}/sticker/{stickerText}"), timed("delete-sticker", this::deleteSticker))
             // 静态资源路由
-            .andRoute(GET("/plugins/editor-sticker/assets/static/sticker.css"), this::serveCss)
-            .andRoute(GET("/plugins/editor-sticker/assets/static/sticker.js"), this::serveJs);
+            .andRoute(GET("/plugins/editor-sticker/assets/static/sticker.css"), timed("asset-css", this::serveCss))
+            .andRoute(GET("/plugins/editor-sticker/assets/static/sticker.js"), timed("asset-js", this::serveJs));
+    }
+    
+    /**
+     * 为路由处理函数记录请求耗时和响应体大小，route 使用固定名称而非实际路径，避免高基数
+     * <p>响应体大小取自提交响应头时编码器已设置的 Content-Length，不重新编码响应内容；没有响应体时记为 0。</p>
+     */
+    private HandlerFunction<ServerResponse> timed(String route, HandlerFunction<ServerResponse> handler) {
+        return request -> Mono.defer(() -> {
+            Timer.Sample sample = metrics.start();
+            ServerHttpResponse exchangeResponse = request.exchange().getResponse();
+            exchangeResponse.beforeCommit(() -> Mono.fromRunnable(() ->
+                metrics.recordBytesSent(route, Math.max(exchangeResponse.getHeaders().getContentLength(), 0))));
+            return handler.handle(request)
+                .doOnNext(response -> metrics.recordRequest(sample, route, response.statusCode().value()))
+                .doOnError(e -> metrics.recordRequest(sample, route, 500));
+        });
     }
     
     /**
@@ -0,0 +1,189 @@
+package cn.ncii.editorsticker;
+
+import io.micrometer.core.instrument.Counter;
+import io.micrometer.core.instrument.DistributionSummary;
+import io.micrometer.core.instrument.Gauge;
+import io.micrometer.core.instrument.Meter;
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.Metrics;
+import io.micrometer.core.instrument.Timer;
+import org.springframework.beans.factory.DisposableBean;
+import org.springframework.beans.factory.ObjectProvider;
+import org.springframework.stereotype.Component;
+
+import java.time.Duration;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * 表情插件的 Micrometer 指标
+ * <p>优先使用 Halo 容器中的 {@link MeterRegistry}，取不到时退回全局注册表。
+ * 所有标签均为固定取值，避免高基数。注册表在插件之外共享，插件停止时移除本插件注册的全部指标，
+ * 避免重启后沿用旧实例的 Gauge 或持有旧的类加载器。</p>
+ */
+@Component
+public class StickerMetrics implements DisposableBean {
+
+    private static final String PREFIX = "editor.sticker";
+
+    private final MeterRegistry registry;
+    // 本插件注册过的指标，停止时从注册表移除
+    private final Set<Meter.Id> meterIds = ConcurrentHashMap.newKeySet();
+
+    // 快照状态，供 Gauge 读取
+    private final AtomicLong snapshotSize = new AtomicLong();
+    private final AtomicLong snapshotMemory = new AtomicLong();
+    private final AtomicLong snapshotVersion = new AtomicLong();
+
+    public StickerMetrics(ObjectProvider<MeterRegistry> registryProvider) {
+        this.registry = registryProvider.getIfAvailable(() -> Metrics.globalRegistry);
+
+        // 上一个实例未正常停止时可能遗留 Gauge，先移除，避免 register 返回指向旧状态的实例
+        registry.find(PREFIX + ".snapshot.size").meters().forEach(registry::remove);
+        registry.find(PREFIX + ".snapshot.memory").meters().forEach(registry::remove);
+        registry.find(PREFIX + ".snapshot.version").meters().forEach(registry::remove);
+        track(Gauge.builder(PREFIX + ".snapshot.size", snapshotSize, AtomicLong::get)
+            .description("当前快照中的表情数量")
+            .strongReference(true)
+            .register(registry));
+        track(Gauge.builder(PREFIX + ".snapshot.memory", snapshotMemory, AtomicLong::get)
+            .description("当前快照的内存估算")
+            .baseUnit("bytes")
+            .strongReference(true)
+            .register(registry));
+        track(Gauge.builder(PREFIX + ".snapshot.version", snapshotVersion, AtomicLong::get)
+            .description("当前快照版本号")
+            .strongReference(true)
+            .register(registry));
+    }
+
+    @Override
+    public void destroy() {
+        meterIds.forEach(registry::remove);
+        meterIds.clear();
+    }
+
+    /**
+     * 开始计时
+     */
+    public Timer.Sample start() {
+        return Timer.start(registry);
+    }
+
+    /**
+     * 记录一次文章渲染
+     *
+     * @param outcome success / skipped / error
+     */
+    public void recordRender(Timer.Sample sample, String outcome) {
+        sample.stop(track(Timer.builder(PREFIX + ".render")
+            .description("文章内容短代码替换耗时")
+            .tag("outcome", outcome)
+            .register(registry)));
+    }
+
+    /**
+     * 记录一次渲染处理的内容大小和替换数量
+     */
+    public void recordRenderContent(int contentLength, int replaced) {
+        track(DistributionSummary.builder(PREFIX + ".render.content.size")
+            .description("渲染处理的文章内容长度")
+            .baseUnit("chars")
+            .register(registry))
+            .record(contentLength);
+        track(DistributionSummary.builder(PREFIX + ".render.replaced")
+            .description("每篇文章替换的表情数量")
+            .register(registry))
+            .record(replaced);
+    }
+
+    public void recordCacheHit(String source) {
+        cacheCounter(source, "hit").increment();
+    }
+
+    public void recordCacheMiss(String source) {
+        cacheCounter(source, "miss").increment();
+    }
+
+    /**
+     * 记录配置重载的某个阶段耗时
+     *
+     * @param stage fetch / parse / build
+     * @param source remote / custom / cluster / file
+     */
+    public void recordReloadStage(String stage, String source, long nanos) {
+        track(Timer.builder(PREFIX + ".reload." + stage)
+            .description("配置重载阶段耗时")
+            .tag("source", source)
+            .register(registry))
+            .record(Duration.ofNanos(nanos));
+    }
+
+    /**
+     * 记录配置重载失败
+     *
+     * @param source remote / custom / cluster / file
+     * @param cause timeout / fetch / parse / publish / corrupt
+     */
+    public void recordReloadFailure(String source, String cause) {
+        track(Counter.builder(PREFIX + ".reload.failures")
+            .description("配置重载失败次数")
+            .tag("source", source)
+            .tag("cause", cause)
+            .register(registry))
+            .increment();
+    }
+
+    /**
+     * 根据异常类型归类拉取失败原因
+     */
+    public static String fetchFailureCause(Throwable e) {
+        return e instanceof TimeoutException ? "timeout" : "fetch";
+    }
+
+    /**
+     * 更新快照 Gauge
+     */
+    public void recordSnapshot(int size, long memoryEstimate, long version) {
+        snapshotSize.set(size);
+        snapshotMemory.set(memoryEstimate);
+        snapshotVersion.set(version);
+    }
+
+    /**
+     * 记录一次 API / 静态资源请求
+     *
+     * @param route 路由名称（固定取值）
+     */
+    public void recordRequest(Timer.Sample sample, String route, int status) {
+        sample.stop(track(Timer.builder(PREFIX + ".http.requests")
+            .description("插件路由请求耗时")
+            .tag("route", route)
+            .tag("status", String.valueOf(status))
+            .register(registry)));
+    }
+
+    public void recordBytesSent(String route, long bytes) {
+        track(DistributionSummary.builder(PREFIX + ".http.bytes.sent")
+            .description("插件路由响应体大小")
+            .baseUnit("bytes")
+            .tag("route", route)
+            .register(registry))
+            .record(bytes);
+    }
+
+    private Counter cacheCounter(String source, String result) {
+        return track(Counter.builder(PREFIX + ".cache")
+            .description("表情映射缓存命中情况")
+            .tag("source", source)
+            .tag("result", result)
+            .register(registry));
+    }
+
+    private <T extends Meter> T track(T meter) {
+        meterIds.add(meter.getId());
+        return meter;
+    }
+}
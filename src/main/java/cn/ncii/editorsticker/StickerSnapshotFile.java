@@ -0,0 +1,237 @@
+package cn.ncii.editorsticker;
+
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.core.env.Environment;
+import org.springframework.stereotype.Component;
+import reactor.core.scheduler.Schedulers;
+
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Optional;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.zip.CRC32;
+
+/**
+ * 本地二进制快照文件，用于重启后快速恢复表情映射
+ * <p>格式（大端）：</p>
+ * <pre>
+ * int    魔数 "STKR"
+ * short  格式版本
+ * long   快照版本
+ * str    来源（配置 URL 或 custom）
+ * int    条目数
+ * 条目 × (str 短代码, str 图片 URL, str 预生成的 img 片段)
+ * int    之前所有字节的 CRC32
+ * </pre>
+ * <p>str 为 int 长度 + UTF-8 字节。</p>
+ */
+@Slf4j
+@Component
+public class StickerSnapshotFile {
+
+    private static final int MAGIC = 0x53544B52;
+    private static final short FORMAT_VERSION = 1;
+    private static final String FILE_NAME = "sticker-snapshot.bin";
+
+    private final Path file;
+    // 等待后台写入的最新快照，以及后台写入是否正在进行
+    private final AtomicReference<Snapshot> pending = new AtomicReference<>();
+    private final AtomicBoolean draining = new AtomicBoolean();
+    // 最近一次读取或写入的快照，内容相同时不再重写文件
+    private volatile Snapshot lastWritten;
+
+    public StickerSnapshotFile(Environment environment) {
+        String workDir = environment.getProperty("halo.work-dir",
+            Path.of(System.getProperty("user.home"), ".halo2").toString());
+        this.file = Path.of(workDir, "plugin-data", "editor-sticker", FILE_NAME);
+    }
+
+    /**
+     * 快照内容
+     *
+     * @param stickers 短代码 -> 图片 URL
+     * @param fragments 短代码 -> 预生成的 img 片段
+     */
+    public record Snapshot(long version, String source, Map<String, String> stickers, Map<String, String> fragments) {
+    }
+
+    /**
+     * 读取快照，文件不存在或无法读取时返回空
+     * <p>整体读入堆内存而不使用内存映射：映射在 GC 前不会释放，Windows 上会导致随后的删除和原子替换失败。</p>
+     *
+     * @throws CorruptSnapshotException 文件损坏，此时文件已被删除
+     */
+    public Optional<Snapshot> read() {
+        if (!Files.isRegularFile(file)) {
+            return Optional.empty();
+        }
+        try {
+            byte[] bytes = Files.readAllBytes(file);
+            if (bytes.length < 4 + 2 + 8 + 4 + 4 + 4) {
+                throw new CorruptSnapshotException("unexpected size " + bytes.length);
+            }
+            Snapshot snapshot = decode(ByteBuffer.wrap(bytes));
+            lastWritten = snapshot;
+            return Optional.of(snapshot);
+        } catch (CorruptSnapshotException e) {
+            delete();
+            throw e;
+        } catch (BufferUnderflowException | IllegalArgumentException e) {
+            delete();
+            throw new CorruptSnapshotException("truncated entry");
+        } catch (IOException e) {
+            log.warn("Failed to read sticker snapshot {}", file, e);
+            return Optional.empty();
+        }
+    }
+
+    /**
+     * 在后台写入快照
+     * <p>只有一个后台任务按顺序写入，每次取最新提交的快照，写入期间的多次提交合并为一次写入，
+     * 因此较旧的快照不会覆盖较新的快照；与上次写入内容相同的快照直接跳过。</p>
+     */
+    public void writeInBackground(Snapshot snapshot) {
+        pending.set(snapshot);
+        drain();
+    }
+
+    private void drain() {
+        if (!draining.compareAndSet(false, true)) {
+            return;
+        }
+        Schedulers.boundedElastic().schedule(() -> {
+            try {
+                Snapshot next;
+                while ((next = pending.getAndSet(null)) != null) {
+                    if (next.equals(lastWritten)) {
+                        continue;
+                    }
+                    try {
+                        write(next);
+                    } catch (IOException e) {
+                        log.warn("Failed to write local sticker snapshot", e);
+                    }
+                }
+            } finally {
+                draining.set(false);
+            }
+            // 释放标记前提交的快照可能没有被取走
+            if (pending.get() != null) {
+                drain();
+            }
+        });
+    }
+
+    /**
+     * 写入快照，先写临时文件再原子替换，避免读到半个文件
+     */
+    public synchronized void write(Snapshot snapshot) throws IOException {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream(64 * 1024);
+        DataOutputStream out = new DataOutputStream(bytes);
+        out.writeInt(MAGIC);
+        out.writeShort(FORMAT_VERSION);
+        out.writeLong(snapshot.version());
+        writeString(out, snapshot.source());
+        out.writeInt(snapshot.stickers().size());
+        for (Map.Entry<String, String> entry : snapshot.stickers().entrySet()) {
+            writeString(out, entry.getKey());
+            writeString(out, entry.getValue());
+            writeString(out, snapshot.fragments().getOrDefault(entry.getKey(), ""));
+        }
+        out.flush();
+
+        CRC32 crc = new CRC32();
+        crc.update(bytes.toByteArray());
+        out.writeInt((int) crc.getValue());
+        out.flush();
+
+        Files.createDirectories(file.getParent());
+        Path tmp = file.resolveSibling(FILE_NAME + ".tmp");
+        Files.write(tmp, bytes.toByteArray());
+        Files.move(tmp, file, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        lastWritten = snapshot;
+    }
+
+    private Snapshot decode(ByteBuffer buffer) {
+        int payloadLength = buffer.limit() - 4;
+        CRC32 crc = new CRC32();
+        crc.update(buffer.duplicate().limit(payloadLength));
+        if ((int) crc.getValue() != buffer.getInt(payloadLength)) {
+            throw new CorruptSnapshotException("checksum mismatch");
+        }
+        buffer.limit(payloadLength);
+
+        if (buffer.getInt() != MAGIC) {
+            throw new CorruptSnapshotException("bad magic");
+        }
+        short formatVersion = buffer.getShort();
+        if (formatVersion != FORMAT_VERSION) {
+            throw new CorruptSnapshotException("unsupported format version " + formatVersion);
+        }
+        long version = buffer.getLong();
+        String source = readString(buffer);
+        int count = buffer.getInt();
+        // 每个条目至少包含三个长度字段
+        if (count < 0 || count > buffer.remaining() / 12) {
+            throw new CorruptSnapshotException("bad entry count " + count);
+        }
+
+        Map<String, String> stickers = HashMap.newHashMap(count);
+        Map<String, String> fragments = HashMap.newHashMap(count);
+        for (int i = 0; i < count; i++) {
+            String shortcode = readString(buffer);
+            stickers.put(shortcode, readString(buffer));
+            String fragment = readString(buffer);
+            if (!fragment.isEmpty()) {
+                fragments.put(shortcode, fragment);
+            }
+        }
+        if (buffer.hasRemaining()) {
+            throw new CorruptSnapshotException("trailing bytes");
+        }
+        return new Snapshot(version, source, stickers, fragments);
+    }
+
+    private void delete() {
+        try {
+            Files.deleteIfExists(file);
+        } catch (IOException e) {
+            log.warn("Failed to delete corrupt sticker snapshot {}", file, e);
+        }
+    }
+
+    private static void writeString(DataOutputStream out, String value) throws IOException {
+        byte[] bytes = value.getBytes(StandardCharsets.UTF_8);
+        out.writeInt(bytes.length);
+        out.write(bytes);
+    }
+
+    private static String readString(ByteBuffer buffer) {
+        int length = buffer.getInt();
+        if (length < 0 || length > buffer.remaining()) {
+            throw new CorruptSnapshotException("bad string length " + length);
+        }
+        String value = StandardCharsets.UTF_8.decode(buffer.slice(buffer.position(), length)).toString();
+        buffer.position(buffer.position() + length);
+        return value;
+    }
+
+    /**
+     * 快照文件损坏
+     */
+    public static class CorruptSnapshotException extends RuntimeException {
+        public CorruptSnapshotException(String message) {
+            super(message);
+        }
+    }
+}
@@ -7,18 +7,24 @@ import org.mockito.Mock;
 import org.mockito.junit.jupiter.MockitoExtension;
 import run.halo.app.plugin.PluginContext;
 
+import static org.mockito.Mockito.verify;
+
 @ExtendWith(MockitoExtension.class)
 class EditorStickerPluginTest {
 
     @Mock
     PluginContext context;
 
+    @Mock
+    StickerContentHandler stickerContentHandler;
+
     @InjectMocks
     EditorStickerPlugin plugin;
 
     @Test
     void contextLoads() {
         plugin.start();
+        verify(stickerContentHandler).restoreLocalSnapshot();
         plugin.stop();
     }
 }
@@ -0,0 +1,342 @@
+package cn.ncii.editorsticker;
+
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.fasterxml.jackson.databind.node.ObjectNode;
+import com.sun.net.httpserver.HttpServer;
+import io.micrometer.core.instrument.Counter;
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.extension.ExtendWith;
+import org.junit.jupiter.api.io.TempDir;
+import org.mockito.ArgumentCaptor;
+import org.mockito.Mock;
+import org.mockito.junit.jupiter.MockitoExtension;
+import org.springframework.beans.factory.support.StaticListableBeanFactory;
+import org.springframework.dao.DataIntegrityViolationException;
+import org.springframework.dao.OptimisticLockingFailureException;
+import org.springframework.mock.env.MockEnvironment;
+import reactor.core.publisher.Mono;
+import run.halo.app.extension.ConfigMap;
+import run.halo.app.extension.Metadata;
+import run.halo.app.extension.ReactiveExtensionClient;
+import run.halo.app.plugin.ReactiveSettingFetcher;
+import run.halo.app.theme.ReactivePostContentHandler.PostContentContext;
+
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
+import java.time.Duration;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.Mockito.after;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.times;
+import static org.mockito.Mockito.timeout;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+
+@ExtendWith(MockitoExtension.class)
+class StickerClusterSyncTest {
+
+    private static final String SNAPSHOT_CONFIGMAP = "editor-sticker-snapshot";
+    private static final String UPSTREAM_URL = "https://example.com/a.png";
+    private static final String SHARED_URL = "https://example.com/shared.png";
+    private static final String SHARED_STICKERS = "{\":g_a:\":\"" + SHARED_URL + "\"}";
+
+    @Mock
+    ReactiveSettingFetcher settingFetcher;
+
+    @Mock
+    ReactiveExtensionClient client;
+
+    @TempDir
+    Path workDir;
+
+    SimpleMeterRegistry registry;
+
+    StickerContentHandler handler;
+
+    HttpServer upstream;
+
+    AtomicInteger upstreamHits;
+
+    String configUrl;
+
+    @BeforeEach
+    void setUp() throws Exception {
+        registry = new SimpleMeterRegistry();
+        StickerMetrics metrics = new StickerMetrics(new StaticListableBeanFactory(
+            Map.of("meterRegistry", registry)).getBeanProvider(MeterRegistry.class));
+        StickerSnapshotFile snapshotFile = new StickerSnapshotFile(
+            new MockEnvironment().withProperty("halo.work-dir", workDir.toString()));
+        handler = new StickerContentHandler(settingFetcher, client, metrics, snapshotFile);
+
+        upstreamHits = new AtomicInteger();
+        upstream = HttpServer.create(new InetSocketAddress("127.0.0.1", 0), 0);
+        upstream.createContext("/OwO.json", exchange -> {
+            upstreamHits.incrementAndGet();
+            byte[] body = ("{\"g\":{\"a\":\"" + UPSTREAM_URL + "\"}}").getBytes(StandardCharsets.UTF_8);
+            exchange.getResponseHeaders().add("Content-Type", "application/json");
+            exchange.sendResponseHeaders(200, body.length);
+            try (OutputStream out = exchange.getResponseBody()) {
+                out.write(body);
+            }
+        });
+        upstream.start();
+        configUrl = "http://127.0.0.1:" + upstream.getAddress().getPort() + "/OwO.json";
+    }
+
+    @AfterEach
+    void tearDown() {
+        upstream.stop(0);
+    }
+
+    @Test
+    void publishesSnapshotWhenMissing() {
+        when(client.fetch(ConfigMap.class, SNAPSHOT_CONFIGMAP)).thenReturn(Mono.empty());
+        when(client.create(any(ConfigMap.class))).thenAnswer(invocation -> Mono.just(invocation.getArgument(0)));
+        when(client.update(any(ConfigMap.class))).thenAnswer(invocation -> Mono.just(invocation.getArgument(0)));
+
+        assertTrue(render(":g_a:", true).contains(UPSTREAM_URL));
+        assertEquals(1, upstreamHits.get());
+
+        ArgumentCaptor<ConfigMap> published = ArgumentCaptor.forClass(ConfigMap.class);
+        verify(client).update(published.capture());
+        Map<String, String> data = published.getValue().getData();
+        assertEquals("1", data.get("version"));
+        assertEquals(configUrl, data.get("source"));
+        assertTrue(data.containsKey("builtAt"));
+        assertFalse(data.containsKey("builder"));
+    }
+
+    @Test
+    void loadsPublishedSnapshotWithoutUpstreamFetch() {
+        when(client.fetch(ConfigMap.class, SNAPSHOT_CONFIGMAP))
+            .thenReturn(Mono.just(snapshot(3, SHARED_STICKERS, System.currentTimeMillis())));
+
+        assertTrue(render(":g_a:", true).contains(SHARED_URL));
+        assertEquals(0, upstreamHits.get());
+        verify(client, never()).create(any());
+        verify(client, never()).update(any());
+    }
+
+    @Test
+    void keepsCacheWhileVersionUnchanged() {
+        handler.snapshotPollInterval = Duration.ZERO;
+        when(client.fetch(ConfigMap.class, SNAPSHOT_CONFIGMAP))
+            .thenReturn(Mono.just(snapshot(3, SHARED_STICKERS, System.currentTimeMillis())));
+
+        render(":g_a:", true);
+        assertTrue(render(":g_a:", true).contains(SHARED_URL));
+
+        assertEquals(1, cacheCount("miss"));
+        assertEquals(1, cacheCount("hit"));
+    }
+
+    @Test
+    void reloadsWhenVersionChanges() {
+        handler.snapshotPollInterval = Duration.ZERO;
+        String other = "https://example.com/other.png";
+        long now = System.currentTimeMillis();
+        when(client.fetch(ConfigMap.class, SNAPSHOT_CONFIGMAP)).thenReturn(
+            Mono.just(snapshot(3, SHARED_STICKERS, now)),
+            Mono.just(snapshot(4, "{\":g_a:\":\"" + other + "\"}", now)));
+
+        assertTrue(render(":g_a:", true).contains(SHARED_URL));
+        assertTrue(render(":g_a:", true).contains(other));
+    }
+
+    @Test
+    void localReloadVersionDoesNotMaskClusterVersion() {
+        // 远程模式下本地版本为 1，开启集群同步后同样为 v1 的共享快照必须被加载
+        assertTrue(render(":g_a:", false).contains(UPSTREAM_URL));
+        when(client.fetch(ConfigMap.class, SNAPSHOT_CONFIGMAP))
+            .thenReturn(Mono.just(snapshot(1, SHARED_STICKERS, System.currentTimeMillis())));
+
+        assertTrue(render(":g_a:", true).contains(SHARED_URL));
+    }
+
+    @Test
+    void concurrentRendersShareOneCheck() {
+        when(client.fetch(ConfigMap.class, SNAPSHOT_CONFIGMAP)).thenReturn(
+            Mono.just(snapshot(3, SHARED_STICKERS, System.currentTimeMillis())).delayElement(Duration.ofMillis(200)));
+        mockSettings(true);
+
+        var results = Mono.zip(handler.handle(context(":g_a:")), handler.handle(context(":g_a:"))).block();
+
+        assertTrue(results.getT1().getContent().contains(SHARED_URL));
+        assertTrue(results.getT2().getContent().contains(SHARED_URL));
+        assertTrue(render(":g_a:", true).contains(SHARED_URL));
+        verify(client, times(1)).fetch(ConfigMap.class, SNAPSHOT_CONFIGMAP);
+    }
+
+    @Test
+    void waitsWhileAnotherReplicaHoldsTheLease() {
+        when(client.fetch(ConfigMap.class, SNAPSHOT_CONFIGMAP)).thenReturn(
+            Mono.just(building("other", System.currentTimeMillis())),
+            Mono.just(building("other", System.currentTimeMillis())),
+            Mono.just(snapshot(1, SHARED_STICKERS, System.currentTimeMillis())));
+
+        assertTrue(render(":g_a:", true).contains(SHARED_URL));
+        assertEquals(0, upstreamHits.get());
+        verify(client, never()).update(any());
+    }
+
+    @Test
+    void createConflictWaitsForPublishedSnapshot() {
+        when(client.fetch(ConfigMap.class, SNAPSHOT_CONFIGMAP)).thenReturn(
+            Mono.empty(),
+            Mono.just(snapshot(1, SHARED_STICKERS, System.currentTimeMillis())));
+        when(client.create(any(ConfigMap.class))).thenReturn(Mono.error(new DataIntegrityViolationException("exists")));
+
+        assertTrue(render(":g_a:", true).contains(SHARED_URL));
+        assertEquals(0, upstreamHits.get());
+        assertNull(registry.find("editor.sticker.reload.failures").counter());
+    }
+
+    @Test
+    void expiredLeaseIsReclaimedAndUpdateConflictWaits() {
+        when(client.fetch(ConfigMap.class, SNAPSHOT_CONFIGMAP)).thenReturn(
+            Mono.just(building("other", System.currentTimeMillis() - 60_000)),
+            Mono.just(snapshot(1, SHARED_STICKERS, System.currentTimeMillis())));
+        when(client.update(any(ConfigMap.class))).thenReturn(Mono.error(new OptimisticLockingFailureException("stale")));
+
+        assertTrue(render(":g_a:", true).contains(SHARED_URL));
+        assertEquals(0, upstreamHits.get());
+        verify(client).update(any());
+    }
+
+    @Test
+    void expiredLeaseIsReclaimedAndBuilt() {
+        when(client.fetch(ConfigMap.class, SNAPSHOT_CONFIGMAP))
+            .thenReturn(Mono.just(building("other", System.currentTimeMillis() - 60_000)));
+        when(client.update(any(ConfigMap.class))).thenAnswer(invocation -> Mono.just(invocation.getArgument(0)));
+
+        assertTrue(render(":g_a:", true).contains(UPSTREAM_URL));
+        assertEquals(1, upstreamHits.get());
+        verify(client, times(2)).update(any());
+    }
+
+    @Test
+    void otherClaimErrorsCountAsPublishFailure() {
+        when(client.fetch(ConfigMap.class, SNAPSHOT_CONFIGMAP)).thenReturn(Mono.empty());
+        when(client.create(any(ConfigMap.class))).thenReturn(Mono.error(new IllegalStateException("database down")));
+
+        assertTrue(render(":g_a:", true).contains(UPSTREAM_URL));
+        assertEquals(1, publishFailures());
+    }
+
+    @Test
+    void publishFailureIsCounted() {
+        when(client.fetch(ConfigMap.class, SNAPSHOT_CONFIGMAP)).thenReturn(Mono.empty());
+        when(client.create(any(ConfigMap.class))).thenAnswer(invocation -> Mono.just(invocation.getArgument(0)));
+        when(client.update(any(ConfigMap.class))).thenReturn(Mono.error(new IllegalStateException("database down")));
+
+        assertEquals(":g_a:", render(":g_a:", true));
+        assertEquals(1, publishFailures());
+    }
+
+    @Test
+    void rebuildsSnapshotBuiltBeforeStartupInBackground() {
+        when(client.fetch(ConfigMap.class, SNAPSHOT_CONFIGMAP))
+            .thenReturn(Mono.just(snapshot(3, SHARED_STICKERS, System.currentTimeMillis() - 120_000)));
+        when(client.update(any(ConfigMap.class))).thenAnswer(invocation -> Mono.just(invocation.getArgument(0)));
+
+        // 过期的快照立即生效，重建在后台完成
+        assertTrue(render(":g_a:", true).contains(SHARED_URL));
+
+        ArgumentCaptor<ConfigMap> published = ArgumentCaptor.forClass(ConfigMap.class);
+        verify(client, timeout(5000).times(2)).update(published.capture());
+        Map<String, String> data = published.getValue().getData();
+        assertEquals("4", data.get("version"));
+        assertTrue(data.get("stickers").contains(UPSTREAM_URL));
+        assertEquals(1, upstreamHits.get());
+    }
+
+    @Test
+    void unchangedRebuildKeepsVersion() {
+        String upstreamStickers = "{\":g_a:\":\"" + UPSTREAM_URL + "\"}";
+        when(client.fetch(ConfigMap.class, SNAPSHOT_CONFIGMAP))
+            .thenReturn(Mono.just(snapshot(3, upstreamStickers, System.currentTimeMillis() - Duration.ofHours(2).toMillis())));
+        when(client.update(any(ConfigMap.class))).thenAnswer(invocation -> Mono.just(invocation.getArgument(0)));
+
+        render(":g_a:", true);
+
+        ArgumentCaptor<ConfigMap> published = ArgumentCaptor.forClass(ConfigMap.class);
+        verify(client, timeout(5000).times(2)).update(published.capture());
+        assertEquals("3", published.getValue().getData().get("version"));
+    }
+
+    @Test
+    void recentSnapshotIsNotRebuilt() {
+        when(client.fetch(ConfigMap.class, SNAPSHOT_CONFIGMAP))
+            .thenReturn(Mono.just(snapshot(3, SHARED_STICKERS, System.currentTimeMillis() - 30_000)));
+
+        assertTrue(render(":g_a:", true).contains(SHARED_URL));
+        verify(client, after(300).never()).update(any());
+        assertEquals(0, upstreamHits.get());
+    }
+
+    private ConfigMap snapshot(long version, String stickers, long builtAt) {
+        ConfigMap configMap = configMap();
+        configMap.getData().put("source", configUrl);
+        configMap.getData().put("version", String.valueOf(version));
+        configMap.getData().put("stickers", stickers);
+        configMap.getData().put("builtAt", String.valueOf(builtAt));
+        return configMap;
+    }
+
+    private ConfigMap building(String builder, long buildStartedAt) {
+        ConfigMap configMap = configMap();
+        configMap.getData().put("builder", builder);
+        configMap.getData().put("buildStartedAt", String.valueOf(buildStartedAt));
+        return configMap;
+    }
+
+    private ConfigMap configMap() {
+        ConfigMap configMap = new ConfigMap();
+        Metadata metadata = new Metadata();
+        metadata.setName(SNAPSHOT_CONFIGMAP);
+        configMap.setMetadata(metadata);
+        configMap.setData(new HashMap<>());
+        return configMap;
+    }
+
+    private double cacheCount(String result) {
+        Counter counter = registry.find("editor.sticker.cache").tag("source", "cluster").tag("result", result).counter();
+        return counter == null ? 0 : counter.count();
+    }
+
+    private double publishFailures() {
+        Counter counter = registry.find("editor.sticker.reload.failures")
+            .tag("source", "cluster").tag("cause", "publish").counter();
+        return counter == null ? 0 : counter.count();
+    }
+
+    private void mockSettings(boolean clusterSync) {
+        ObjectNode setting = new ObjectMapper().createObjectNode()
+            .put("stickerConfigUrl", configUrl)
+            .put("enableClusterSync", clusterSync);
+        when(settingFetcher.getSettingValue("basic")).thenReturn(Mono.just(setting));
+    }
+
+    private PostContentContext context(String content) {
+        return PostContentContext.builder().content(content).build();
+    }
+
+    private String render(String content, boolean clusterSync) {
+        mockSettings(clusterSync);
+        return handler.handle(context(content)).block().getContent();
+    }
+}
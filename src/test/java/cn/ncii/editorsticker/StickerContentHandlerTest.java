@@ -0,0 +1,152 @@
+package cn.ncii.editorsticker;
+
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.fasterxml.jackson.databind.node.ObjectNode;
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.extension.ExtendWith;
+import org.junit.jupiter.api.io.TempDir;
+import org.mockito.Mock;
+import org.mockito.junit.jupiter.MockitoExtension;
+import org.springframework.beans.factory.support.StaticListableBeanFactory;
+import org.springframework.mock.env.MockEnvironment;
+import reactor.core.publisher.Mono;
+import run.halo.app.extension.ConfigMap;
+import run.halo.app.extension.ReactiveExtensionClient;
+import run.halo.app.plugin.ReactiveSettingFetcher;
+import run.halo.app.theme.ReactivePostContentHandler.PostContentContext;
+
+import java.nio.file.Path;
+import java.util.Map;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.mockito.Mockito.when;
+
+@ExtendWith(MockitoExtension.class)
+class StickerContentHandlerTest {
+
+    private static final String STICKER = "<img src=\"https://example.com/a.png\" srcset=\"https://example.com/a.png\""
+        + " sizes=\"\" alt=\"g_a\" title=\"g_a\" class=\"sticker-emoji no-lightbox\""
+        + " style=\"display:inline;vertical-align:middle;background:none;border:none;box-shadow:none;\""
+        + " referrerpolicy=\"no-referrer\">";
+
+    // 分块替换时每块的字符数，与 StickerContentHandler 保持一致
+    private static final int CHUNK = 16 * 1024;
+
+    @Mock
+    ReactiveSettingFetcher settingFetcher;
+
+    @Mock
+    ReactiveExtensionClient client;
+
+    @TempDir
+    Path workDir;
+
+    StickerContentHandler handler;
+
+    @BeforeEach
+    void setUp() {
+        StickerMetrics metrics = new StickerMetrics(new StaticListableBeanFactory(
+            Map.of("meterRegistry", new SimpleMeterRegistry())).getBeanProvider(MeterRegistry.class));
+        StickerSnapshotFile snapshotFile = new StickerSnapshotFile(
+            new MockEnvironment().withProperty("halo.work-dir", workDir.toString()));
+        handler = new StickerContentHandler(settingFetcher, client, metrics, snapshotFile);
+
+        ConfigMap customData = new ConfigMap();
+        customData.setData(Map.of("stickers", "{\"g\":{\"a\":\"https://example.com/a.png\"}}"));
+        when(client.fetch(ConfigMap.class, "editor-sticker-custom-data")).thenReturn(Mono.just(customData));
+    }
+
+    @Test
+    void replacesShortcodesInText() {
+        assertEquals("<p>hi " + STICKER + " :x:</p>", render("<p>hi :g_a: \\:x:</p>"));
+        assertEquals("<p>:g_a: :g_b:</p>", render("<p>\\:g_a\\: :g_b:</p>"));
+    }
+
+    @Test
+    void leavesExcludedElementsAndAttributesAlone() {
+        for (String element : new String[] {"code", "pre", "script", "style", "textarea"}) {
+            String html = "<" + element + " class=\"x\">:g_a:</" + element.toUpperCase() + ">";
+            assertEquals(html + STICKER, render(html + ":g_a:"));
+        }
+        assertEquals("<p title=\":g_a:\" data-x=':g_a:'>" + STICKER + "</p>",
+            render("<p title=\":g_a:\" data-x=':g_a:'>:g_a:</p>"));
+    }
+
+    @Test
+    void unescapesOnlyInsideCodeBlocks() {
+        assertEquals("<code>:g_a: :g_a:</code>", render("<code>:g_a: \\:g_a\\:</code>"));
+        assertEquals("<pre>:g_a:</pre>", render("<pre>\\:g_a\\:</pre>"));
+        for (String element : new String[] {"script", "style", "textarea"}) {
+            String html = "<" + element + ">a = '\\:g_a\\:'</" + element + ">";
+            assertEquals(html, render(html));
+        }
+    }
+
+    @Test
+    void readsFullTagNames() {
+        assertEquals("<code-block>" + STICKER + "</code-block>", render("<code-block>:g_a:</code-block>"));
+        assertEquals("<pre-view>" + STICKER + "</pre-view>", render("<pre-view>:g_a:</pre-view>"));
+        assertEquals("<code>:g_a:</code-block>:g_a:</code >" + STICKER,
+            render("<code>:g_a:</code-block>:g_a:</code >:g_a:"));
+    }
+
+    @Test
+    void skipsComments() {
+        assertEquals("<!-- :g_a: -->" + STICKER, render("<!-- :g_a: -->:g_a:"));
+    }
+
+    @Test
+    void onlyQuotesStartingAnAttributeValueHideTheTagEnd() {
+        assertEquals("<img alt=don't>" + STICKER + "<p a=\"'\">" + STICKER,
+            render("<img alt=don't>:g_a:<p a=\"'\">:g_a:"));
+    }
+
+    @Test
+    void toleratesUnterminatedMarkup() {
+        assertEquals("a " + STICKER + " <p title=\":g_a:", render("a :g_a: <p title=\":g_a:"));
+        assertEquals(STICKER + "<code>:g_a: :g_a:", render(":g_a:<code>:g_a: \\:g_a\\:"));
+        assertEquals(STICKER + " <!-- :g_a:", render(":g_a: <!-- :g_a:"));
+        assertEquals("1 < 2 " + STICKER, render("1 < 2 :g_a:"));
+    }
+
+    @Test
+    void chunkEdgesMatchUnchunkedOutput() {
+        // 短代码和转义形式在块提交边界（块末尾 - 256）和块末尾附近滑动
+        for (String token : new String[] {":g_a:", "\\:g_a\\:", ": g_a :"}) {
+            for (int edge : new int[] {CHUNK - 256, CHUNK}) {
+                for (int offset = edge - token.length() - 2; offset <= edge + 2; offset++) {
+                    String content = "x".repeat(offset) + token + "y".repeat(2 * CHUNK);
+                    assertEquals(render(content, Integer.MAX_VALUE), render(content, 0),
+                        () -> "token " + token + " at offset " + content.indexOf(token.charAt(0)));
+                }
+            }
+        }
+    }
+
+    @Test
+    void chunkEdgesInsideExcludedElementMatchUnchunkedOutput() {
+        String token = "\\:g_a\\:";
+        for (int offset = CHUNK - token.length() - 2; offset <= CHUNK + 2; offset++) {
+            String content = "<pre>" + "x".repeat(offset) + token + "y".repeat(CHUNK) + "</pre>:g_a:";
+            String unchunked = render(content, Integer.MAX_VALUE);
+            assertEquals(unchunked, render(content, 0));
+            assertEquals(content.replace(token, ":g_a:").replace("</pre>:g_a:", "</pre>" + STICKER), unchunked);
+        }
+    }
+
+    private String render(String content) {
+        return render(content, Integer.MAX_VALUE);
+    }
+
+    private String render(String content, int streamingThreshold) {
+        ObjectNode setting = new ObjectMapper().createObjectNode()
+            .put("enableCustomMode", true)
+            .put("streamingThreshold", streamingThreshold);
+        when(settingFetcher.getSettingValue("basic")).thenReturn(Mono.just(setting));
+        PostContentContext context = PostContentContext.builder().content(content).build();
+        return handler.handle(context).block().getContent();
+    }
+}
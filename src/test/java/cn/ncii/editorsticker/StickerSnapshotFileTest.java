@@ -0,0 +1,109 @@
+package cn.ncii.editorsticker;
+
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+import org.springframework.mock.env.MockEnvironment;
+
+import java.nio.ByteBuffer;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Arrays;
+import java.util.Map;
+import java.util.Optional;
+import java.util.zip.CRC32;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+class StickerSnapshotFileTest {
+
+    private static final StickerSnapshotFile.Snapshot SNAPSHOT = new StickerSnapshotFile.Snapshot(7,
+        "https://example.com/OwO.json",
+        Map.of(":g_a:", "https://example.com/a.png", ":表情_笑:", "https://example.com/笑.png"),
+        Map.of(":g_a:", "<img src=\"https://example.com/a.png\" style=\""));
+
+    @TempDir
+    Path workDir;
+
+    StickerSnapshotFile snapshotFile;
+
+    Path file;
+
+    @BeforeEach
+    void setUp() {
+        snapshotFile = new StickerSnapshotFile(new MockEnvironment().withProperty("halo.work-dir", workDir.toString()));
+        file = workDir.resolve("plugin-data/editor-sticker/sticker-snapshot.bin");
+    }
+
+    @Test
+    void readsWhatWasWritten() throws Exception {
+        assertEquals(Optional.empty(), snapshotFile.read());
+
+        snapshotFile.write(SNAPSHOT);
+
+        assertEquals(Optional.of(SNAPSHOT), snapshotFile.read());
+    }
+
+    @Test
+    void backgroundWritesKeepTheLatestSnapshot() throws Exception {
+        for (int version = 1; version <= 100; version++) {
+            snapshotFile.writeInBackground(new StickerSnapshotFile.Snapshot(version, SNAPSHOT.source(),
+                SNAPSHOT.stickers(), SNAPSHOT.fragments()));
+        }
+
+        long deadline = System.currentTimeMillis() + 5000;
+        while (snapshotFile.read().map(StickerSnapshotFile.Snapshot::version).orElse(0L) != 100) {
+            assertTrue(System.currentTimeMillis() < deadline, "latest snapshot was not written");
+            Thread.sleep(20);
+        }
+        Thread.sleep(200);
+        assertEquals(100, snapshotFile.read().orElseThrow().version());
+    }
+
+    @Test
+    void deletesFileOnChecksumMismatch() throws Exception {
+        snapshotFile.write(SNAPSHOT);
+        byte[] bytes = Files.readAllBytes(file);
+        bytes[bytes.length / 2] ^= 0x01;
+        Files.write(file, bytes);
+
+        var e = assertThrows(StickerSnapshotFile.CorruptSnapshotException.class, snapshotFile::read);
+        assertEquals("checksum mismatch", e.getMessage());
+        assertFalse(Files.exists(file));
+        assertEquals(Optional.empty(), snapshotFile.read());
+    }
+
+    @Test
+    void deletesTruncatedFile() throws Exception {
+        snapshotFile.write(SNAPSHOT);
+        byte[] bytes = Files.readAllBytes(file);
+        Files.write(file, Arrays.copyOf(bytes, bytes.length - 10));
+
+        assertThrows(StickerSnapshotFile.CorruptSnapshotException.class, snapshotFile::read);
+        assertFalse(Files.exists(file));
+
+        Files.write(file, Arrays.copyOf(bytes, 8));
+        assertThrows(StickerSnapshotFile.CorruptSnapshotException.class, snapshotFile::read);
+        assertFalse(Files.exists(file));
+    }
+
+    @Test
+    void rejectsUnknownFormatVersion() throws Exception {
+        snapshotFile.write(SNAPSHOT);
+        byte[] bytes = Files.readAllBytes(file);
+        // 格式版本位于魔数之后，修改后重新计算校验和，确保命中的是版本检查
+        ByteBuffer buffer = ByteBuffer.wrap(bytes);
+        buffer.putShort(4, (short) 99);
+        CRC32 crc = new CRC32();
+        crc.update(bytes, 0, bytes.length - 4);
+        buffer.putInt(bytes.length - 4, (int) crc.getValue());
+        Files.write(file, bytes);
+
+        var e = assertThrows(StickerSnapshotFile.CorruptSnapshotException.class, snapshotFile::read);
+        assertTrue(e.getMessage().contains("format version"));
+        assertFalse(Files.exists(file));
+    }
+}
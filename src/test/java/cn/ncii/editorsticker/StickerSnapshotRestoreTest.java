@@ -0,0 +1,151 @@
+package cn.ncii.editorsticker;
+
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.fasterxml.jackson.databind.node.ObjectNode;
+import com.sun.net.httpserver.HttpServer;
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.extension.ExtendWith;
+import org.junit.jupiter.api.io.TempDir;
+import org.mockito.Mock;
+import org.mockito.junit.jupiter.MockitoExtension;
+import org.springframework.beans.factory.support.StaticListableBeanFactory;
+import org.springframework.mock.env.MockEnvironment;
+import reactor.core.publisher.Mono;
+import run.halo.app.extension.ReactiveExtensionClient;
+import run.halo.app.plugin.ReactiveSettingFetcher;
+import run.halo.app.theme.ReactivePostContentHandler.PostContentContext;
+
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
+import java.util.Map;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.function.BooleanSupplier;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+import static org.mockito.Mockito.when;
+
+@ExtendWith(MockitoExtension.class)
+class StickerSnapshotRestoreTest {
+
+    private static final String RESTORED_URL = "https://example.com/restored.png";
+    private static final String UPSTREAM_URL = "https://example.com/a.png";
+
+    @Mock
+    ReactiveSettingFetcher settingFetcher;
+
+    @Mock
+    ReactiveExtensionClient client;
+
+    @TempDir
+    Path workDir;
+
+    SimpleMeterRegistry registry;
+
+    StickerSnapshotFile snapshotFile;
+
+    StickerContentHandler handler;
+
+    HttpServer upstream;
+
+    AtomicInteger upstreamHits;
+
+    AtomicReference<String> upstreamBody;
+
+    CountDownLatch release;
+
+    String configUrl;
+
+    @BeforeEach
+    void setUp() throws Exception {
+        registry = new SimpleMeterRegistry();
+        StickerMetrics metrics = new StickerMetrics(new StaticListableBeanFactory(
+            Map.of("meterRegistry", registry)).getBeanProvider(MeterRegistry.class));
+        snapshotFile = new StickerSnapshotFile(new MockEnvironment().withProperty("halo.work-dir", workDir.toString()));
+        handler = new StickerContentHandler(settingFetcher, client, metrics, snapshotFile);
+
+        upstreamHits = new AtomicInteger();
+        upstreamBody = new AtomicReference<>("{\"g\":{\"a\":\"" + UPSTREAM_URL + "\"}}");
+        release = new CountDownLatch(1);
+        upstream = HttpServer.create(new InetSocketAddress("127.0.0.1", 0), 0);
+        upstream.createContext("/OwO.json", exchange -> {
+            upstreamHits.incrementAndGet();
+            try {
+                // 在测试放行前挂起，证明渲染不等待后台重新拉取
+                release.await(5, TimeUnit.SECONDS);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+            byte[] body = upstreamBody.get().getBytes(StandardCharsets.UTF_8);
+            exchange.getResponseHeaders().add("Content-Type", "application/json");
+            exchange.sendResponseHeaders(200, body.length);
+            try (OutputStream out = exchange.getResponseBody()) {
+                out.write(body);
+            }
+        });
+        upstream.start();
+        configUrl = "http://127.0.0.1:" + upstream.getAddress().getPort() + "/OwO.json";
+
+        ObjectNode setting = new ObjectMapper().createObjectNode().put("stickerConfigUrl", configUrl);
+        when(settingFetcher.getSettingValue("basic")).thenReturn(Mono.just(setting));
+    }
+
+    @AfterEach
+    void tearDown() {
+        release.countDown();
+        upstream.stop(0);
+    }
+
+    @Test
+    void restoredStickersRenderWithoutFetchAndChangedUpstreamReplacesThem() throws Exception {
+        snapshotFile.write(new StickerSnapshotFile.Snapshot(1, configUrl, Map.of(":g_a:", RESTORED_URL), Map.of()));
+
+        handler.restoreLocalSnapshot();
+
+        assertTrue(render(":g_a:").contains(RESTORED_URL));
+        release.countDown();
+        await(() -> render(":g_a:").contains(UPSTREAM_URL));
+        assertEquals(1, upstreamHits.get());
+        assertEquals(2, snapshotVersion());
+    }
+
+    @Test
+    void unchangedUpstreamKeepsRestoredSnapshot() throws Exception {
+        upstreamBody.set("{\"g\":{\"a\":\"" + RESTORED_URL + "\"}}");
+        snapshotFile.write(new StickerSnapshotFile.Snapshot(1, configUrl, Map.of(":g_a:", RESTORED_URL), Map.of()));
+
+        handler.restoreLocalSnapshot();
+        release.countDown();
+        await(() -> upstreamHits.get() == 1);
+        Thread.sleep(200);
+
+        assertTrue(render(":g_a:").contains(RESTORED_URL));
+        assertEquals(1, snapshotVersion());
+        assertEquals(1, upstreamHits.get());
+    }
+
+    private double snapshotVersion() {
+        return registry.get("editor.sticker.snapshot.version").gauge().value();
+    }
+
+    private String render(String content) {
+        return handler.handle(PostContentContext.builder().content(content).build()).block().getContent();
+    }
+
+    private static void await(BooleanSupplier condition) throws InterruptedException {
+        long deadline = System.currentTimeMillis() + 5000;
+        while (!condition.getAsBoolean()) {
+            assertTrue(System.currentTimeMillis() < deadline, "condition not met in time");
+            Thread.sleep(20);
+        }
+    }
+}